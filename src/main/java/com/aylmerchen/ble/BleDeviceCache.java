@@ -0,0 +1,368 @@
+package com.aylmerchen.ble;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.aylmerchen.ble.BuildConfig.debug;
+
+/**
+ * 已知设备的磁盘缓存：地址、名称、最近的信号强度与出现时间，以及上次使用的服务、属性和 MTU。
+ * 应用启动时可以直接展示设备列表、不经扫描直接连接，连接后按记录的 UUID 直接取得属性而不必遍历服务列表。
+ * 创建时即在后台线程读取磁盘，访问时读取尚未完成才需等待，修改后延迟合并写回
+ * @author AylmerChen
+ * @date 2018/4/17
+ */
+public final class BleDeviceCache {
+
+    private static final String TAG = BleDeviceCache.class.getSimpleName();
+
+    private static final String FILE_NAME = "ble_device_cache.bin";
+
+    /**
+     * 文件头与版本，格式变化时递增版本，旧文件直接丢弃
+     */
+    private static final int MAGIC = 0x424C4543;
+    private static final int VERSION = 1;
+
+    private static final int FLAG_NAME = 1;
+    private static final int FLAG_LAYOUT = 1 << 1;
+    private static final int FLAG_NOTIFY = 1 << 2;
+
+    /**
+     * 最多记录的设备数，超出时淘汰最久未出现的
+     */
+    private static final int MAX_DEVICES = 32;
+
+    /**
+     * 写回磁盘的延迟，扫描过程中的频繁更新会合并为一次写入
+     */
+    private static final long SAVE_DELAY = 1000;
+
+    private static volatile BleDeviceCache sInstance;
+
+    private final ScheduledExecutorService mSaveExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * 缓存文件，获取目录本身也可能访问磁盘，所以与读写一样只在 mSaveExecutor 上使用
+     */
+    private AtomicFile mFile;
+
+    /**
+     * 创建时提交的读取任务，写回任务排在它之后，不会覆盖尚未读取的文件
+     */
+    private final Future<Map<String, BleDeviceRecord>> mLoadTask;
+
+    /**
+     * 以地址为键，为 null 表示尚未取得读取结果
+     */
+    private Map<String, BleDeviceRecord> mDevices;
+    private boolean mSaveScheduled;
+
+    private final Runnable mSaveTask = new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    };
+
+    public static BleDeviceCache getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            synchronized (BleDeviceCache.class) {
+                if (sInstance == null) {
+                    sInstance = new BleDeviceCache(context.getApplicationContext());
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private BleDeviceCache(final Context context) {
+        mLoadTask = mSaveExecutor.submit(new Callable<Map<String, BleDeviceRecord>>() {
+            @Override
+            public Map<String, BleDeviceRecord> call() {
+                mFile = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+                return load();
+            }
+        });
+    }
+
+    /**
+     * 所有已知设备，按最近出现时间从新到旧排列。后台读取尚未完成时会等待其完成
+     */
+    @NonNull
+    public synchronized List<BleDeviceRecord> getDevices() {
+        List<BleDeviceRecord> list = new ArrayList<>(devices().size());
+        for (BleDeviceRecord record : devices().values()) {
+            list.add(new BleDeviceRecord(record));
+        }
+        Collections.sort(list, new Comparator<BleDeviceRecord>() {
+            @Override
+            public int compare(BleDeviceRecord a, BleDeviceRecord b) {
+                return a.lastSeen < b.lastSeen ? 1 : (a.lastSeen == b.lastSeen ? 0 : -1);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * @return 设备记录的副本，未知设备返回 null
+     */
+    @Nullable
+    public synchronized BleDeviceRecord getDevice(@NonNull String address) {
+        BleDeviceRecord record = devices().get(address);
+        return record == null ? null : new BleDeviceRecord(record);
+    }
+
+    public synchronized void remove(@NonNull String address) {
+        if (devices().remove(address) != null) {
+            scheduleSave();
+        }
+    }
+
+    public synchronized void clear() {
+        devices().clear();
+        scheduleSave();
+    }
+
+    /**
+     * 扫描到设备
+     */
+    synchronized void onSeen(@NonNull String address, @Nullable String name, int rssi) {
+        BleDeviceRecord record = obtain(address);
+        if (name != null) {
+            record.name = name;
+        }
+        record.rssi = rssi;
+        record.lastSeen = System.currentTimeMillis();
+        scheduleSave();
+    }
+
+    /**
+     * 连接上设备
+     */
+    synchronized void onConnected(@NonNull String address, @Nullable String name) {
+        BleDeviceRecord record = obtain(address);
+        if (name != null) {
+            record.name = name;
+        }
+        record.lastSeen = System.currentTimeMillis();
+        scheduleSave();
+    }
+
+    synchronized void onMtuChanged(@NonNull String address, int mtu) {
+        obtain(address).mtu = mtu;
+        scheduleSave();
+    }
+
+    /**
+     * 记录通信所用的服务与属性
+     */
+    synchronized void onConfigured(@NonNull String address, @NonNull UUID service, @NonNull UUID read, @NonNull UUID write, boolean notify) {
+        BleDeviceRecord record = obtain(address);
+        if (service.equals(record.serviceUuid) && read.equals(record.readUuid)
+                && write.equals(record.writeUuid) && notify == record.notify) {
+            return;
+        }
+        record.serviceUuid = service;
+        record.readUuid = read;
+        record.writeUuid = write;
+        record.notify = notify;
+        scheduleSave();
+    }
+
+    private BleDeviceRecord obtain(String address) {
+        Map<String, BleDeviceRecord> devices = devices();
+        BleDeviceRecord record = devices.get(address);
+        if (record == null) {
+            if (devices.size() >= MAX_DEVICES) {
+                evictOldest(devices);
+            }
+            record = new BleDeviceRecord(address);
+            devices.put(address, record);
+        }
+        return record;
+    }
+
+    private static void evictOldest(Map<String, BleDeviceRecord> devices) {
+        String oldest = null;
+        long oldestTime = Long.MAX_VALUE;
+        for (BleDeviceRecord record : devices.values()) {
+            if (record.lastSeen < oldestTime) {
+                oldestTime = record.lastSeen;
+                oldest = record.address;
+            }
+        }
+        devices.remove(oldest);
+    }
+
+    private void scheduleSave() {
+        if (!mSaveScheduled) {
+            mSaveScheduled = true;
+            mSaveExecutor.schedule(mSaveTask, SAVE_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private Map<String, BleDeviceRecord> devices() {
+        if (mDevices == null) {
+            mDevices = awaitLoad();
+        }
+        return mDevices;
+    }
+
+    /**
+     * 等待后台读取完成，读取任务不持有本对象的锁，所以可以在锁内等待
+     */
+    private Map<String, BleDeviceRecord> awaitLoad() {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return mLoadTask.get();
+                } catch (InterruptedException e) {
+                    // 读取很快完成，继续等待，之后恢复中断标记
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            if (debug) {
+                Log.e(TAG, "Unable to read device cache, discarding it.", e.getCause());
+            }
+            return new LinkedHashMap<>();
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Map<String, BleDeviceRecord> load() {
+        Map<String, BleDeviceRecord> devices = new LinkedHashMap<>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                return devices;
+            }
+            int count = in.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                BleDeviceRecord record = new BleDeviceRecord(in.readUTF());
+                int flags = in.readUnsignedByte();
+                if ((flags & FLAG_NAME) != 0) {
+                    record.name = in.readUTF();
+                }
+                record.rssi = in.readByte();
+                record.lastSeen = in.readLong();
+                record.mtu = in.readUnsignedShort();
+                if ((flags & FLAG_LAYOUT) != 0) {
+                    record.serviceUuid = new UUID(in.readLong(), in.readLong());
+                    record.readUuid = new UUID(in.readLong(), in.readLong());
+                    record.writeUuid = new UUID(in.readLong(), in.readLong());
+                    record.notify = (flags & FLAG_NOTIFY) != 0;
+                }
+                devices.put(record.address, record);
+            }
+        } catch (FileNotFoundException e) {
+            // 首次使用，尚无缓存文件
+        } catch (IOException e) {
+            if (debug) {
+                Log.e(TAG, "Unable to read device cache, discarding it.", e);
+            }
+            devices.clear();
+        } finally {
+            closeQuietly(in);
+        }
+        return devices;
+    }
+
+    private void save() {
+        List<BleDeviceRecord> snapshot = new ArrayList<>();
+        synchronized (this) {
+            mSaveScheduled = false;
+            for (BleDeviceRecord record : devices().values()) {
+                snapshot.add(new BleDeviceRecord(record));
+            }
+        }
+        if (mFile == null) {
+            // 读取任务未能取得文件目录，本次只在内存中记录
+            return;
+        }
+
+        FileOutputStream stream = null;
+        try {
+            stream = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeShort(snapshot.size());
+            for (BleDeviceRecord record : snapshot) {
+                boolean hasLayout = record.hasLayout();
+                int flags = (record.name != null ? FLAG_NAME : 0)
+                        | (hasLayout ? FLAG_LAYOUT : 0)
+                        | (hasLayout && record.notify ? FLAG_NOTIFY : 0);
+                out.writeUTF(record.address);
+                out.writeByte(flags);
+                if (record.name != null) {
+                    out.writeUTF(record.name);
+                }
+                out.writeByte(Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, record.rssi)));
+                out.writeLong(record.lastSeen);
+                out.writeShort(record.mtu);
+                if (hasLayout) {
+                    writeUuid(out, record.serviceUuid);
+                    writeUuid(out, record.readUuid);
+                    writeUuid(out, record.writeUuid);
+                }
+            }
+            out.flush();
+            mFile.finishWrite(stream);
+        } catch (IOException e) {
+            if (debug) {
+                Log.e(TAG, "Unable to write device cache.", e);
+            }
+            if (stream != null) {
+                mFile.failWrite(stream);
+            }
+        }
+    }
+
+    private static void writeUuid(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static void closeQuietly(DataInputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+                // 读取已完成，关闭失败无需处理
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.aylmerchen.ble;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.UUID;
+
+/**
+ * 已知设备的记录，由 {@link BleDeviceCache} 持久化
+ * @author AylmerChen
+ * @date 2018/4/17
+ */
+public final class BleDeviceRecord {
+
+    final String address;
+    String name;
+    int rssi;
+
+    /**
+     * 最近一次扫描到或连接上的时间，System#currentTimeMillis，跨重启有效
+     */
+    long lastSeen;
+
+    /**
+     * 协商得到的 MTU，0 表示未知，连接后可传给 BtLeGattService#requestMtu(int) 重新申请
+     */
+    int mtu;
+
+    /**
+     * 上次配置通信时使用的服务与属性，为 null 表示尚未配置过
+     */
+    UUID serviceUuid;
+    UUID readUuid;
+    UUID writeUuid;
+    boolean notify;
+
+    BleDeviceRecord(@NonNull String address) {
+        this.address = address;
+    }
+
+    BleDeviceRecord(BleDeviceRecord other) {
+        address = other.address;
+        name = other.name;
+        rssi = other.rssi;
+        lastSeen = other.lastSeen;
+        mtu = other.mtu;
+        serviceUuid = other.serviceUuid;
+        readUuid = other.readUuid;
+        writeUuid = other.writeUuid;
+        notify = other.notify;
+    }
+
+    @NonNull
+    public String getAddress() {
+        return address;
+    }
+
+    @Nullable
+    public String getName() {
+        return name;
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * 是否记录了通信所用的服务与属性，有记录时可以直接用 BtLeGattService#configCommunication() 配置
+     */
+    public boolean hasLayout() {
+        return serviceUuid != null && readUuid != null && writeUuid != null;
+    }
+
+    @Nullable
+    public UUID getServiceUuid() {
+        return serviceUuid;
+    }
+
+    @Nullable
+    public UUID getReadUuid() {
+        return readUuid;
+    }
+
+    @Nullable
+    public UUID getWriteUuid() {
+        return writeUuid;
+    }
+
+    public boolean isNotify() {
+        return notify;
+    }
+}
@@ -0,0 +1,74 @@
+package com.aylmerchen.ble;
+
+import java.util.UUID;
+
+/**
+ * 一个带到达时间戳的通知数据包，时间戳在蓝牙回调线程上收到数据时立即打上，不受 Handler 投递延迟影响
+ * @author AylmerChen
+ * @date 2018/4/17
+ */
+public final class BleSample {
+
+    private final UUID mUuid;
+    private final byte[] mData;
+    private final long mReceiveTimeNanos;
+
+    private long mDeviceCounter = -1;
+    private long mAlignedTimeNanos;
+    private int mLostBefore;
+
+    BleSample(UUID uuid, byte[] data, long receiveTimeNanos) {
+        mUuid = uuid;
+        mData = data;
+        mReceiveTimeNanos = receiveTimeNanos;
+        mAlignedTimeNanos = receiveTimeNanos;
+    }
+
+    /**
+     * 发出该通知的属性 UUID
+     */
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    /**
+     * 数据包内容，经过编解码环节时与 MSG_DATA_AVAILABLE 消息共用同一个数组，不要修改
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * 到达时间，SystemClock#elapsedRealtimeNanos 时间戳
+     */
+    public long getReceiveTimeNanos() {
+        return mReceiveTimeNanos;
+    }
+
+    /**
+     * 数据包中携带的设备计数器(已展开回绕)，未配置 DeviceClockEstimator 或解析失败时为 -1
+     */
+    public long getDeviceCounter() {
+        return mDeviceCounter;
+    }
+
+    /**
+     * 由设备计数器换算到手机时钟的采样时间，未对齐时等于到达时间
+     */
+    public long getAlignedTimeNanos() {
+        return mAlignedTimeNanos;
+    }
+
+    /**
+     * 根据设备计数器判断，在该包之前丢失的包数
+     */
+    public int getLostBefore() {
+        return mLostBefore;
+    }
+
+    void setAlignment(long deviceCounter, long alignedTimeNanos, int lostBefore) {
+        mDeviceCounter = deviceCounter;
+        mAlignedTimeNanos = alignedTimeNanos;
+        mLostBefore = lostBefore;
+    }
+}
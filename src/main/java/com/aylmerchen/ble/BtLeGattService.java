@@ -29,12 +29,15 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -60,6 +63,8 @@ public class BtLeGattService extends Service {
     public static final int STATE_CONNECTING = 1;
     public static final int STATE_CONNECTED_NOT_CONFIGURED = 2;
     public static final int STATE_CONNECTED_AND_CONFIGURED = 3;
+    public static final int STATE_SERVICES_DISCOVERED = 4;
+    public static final int STATE_CONFIGURING = 5;
 
     /**
      * 建立连接的过程中向前台回传的事件
@@ -73,6 +78,8 @@ public class BtLeGattService extends Service {
     public static final int MSG_GATT_DESCRIPTOR_READ_SUCCESS = 32;
     public static final int MSG_GATT_DESCRIPTOR_READ_FAIL = 64;
     public static final int MSG_GATT_LOSE_CONNECT = 128;
+    public static final int MSG_GATT_MTU_CHANGE_SUCCESS = 256;
+    public static final int MSG_GATT_MTU_CHANGE_FAIL = 512;
 
 
     /**
@@ -85,6 +92,7 @@ public class BtLeGattService extends Service {
     public static final int MSG_DATA_RELIABLE_WRITE_FAIL = 8;
     public static final int MSG_DATA_READ_SUCCESS = 16;
     public static final int MSG_DATA_READ_FAIL = 32;
+    public static final int MSG_DATA_SAMPLE_AVAILABLE = 64;
 
 
     /**
@@ -97,15 +105,40 @@ public class BtLeGattService extends Service {
 
     private Handler mConnectHandler;
     private Handler mTransmitHandler;
+    private volatile Handler mSampleHandler;
+
+    /**
+     * 可选的时钟对齐与抖动缓冲
+     */
+    private volatile DeviceClockEstimator mClockEstimator;
+    private volatile SampleJitterBuffer mJitterBuffer;
+
+    /**
+     * 可选的编解码环节
+     */
+    private volatile PayloadCodecStage mCodecStage;
+
+    /**
+     * 已知设备及其服务布局的磁盘缓存
+     */
+    private BleDeviceCache mDeviceCache;
 
     /**
      * 接收数据的属性,发送数据的属性
      */
-    private BluetoothGattCharacteristic mReadChara;
-    private BluetoothGattCharacteristic mWriteChara;
+    private volatile BluetoothGattCharacteristic mReadChara;
+    private volatile BluetoothGattCharacteristic mWriteChara;
+
 
+    /**
+     * 连接状态机，由蓝牙 Binder 线程推进，外部线程可以安全读取
+     */
+    private final GattStateMachine mStateMachine = new GattStateMachine();
 
-    private int mConnectionState = STATE_DISCONNECTED;
+    /**
+     * 属性读取的合并与缓存
+     */
+    private final CharacteristicReadCache mReadCache = new CharacteristicReadCache();
 
     private BluetoothGattCallback mGattCallback;
 
@@ -145,6 +178,7 @@ public class BtLeGattService extends Service {
     public void onDestroy() {
         super.onDestroy();
         closeGATT();
+        setSampleHandler(null);
         mBinder = null;
         mConnectHandler = null;
         mTransmitHandler = null;
@@ -160,6 +194,7 @@ public class BtLeGattService extends Service {
         if (mBluetoothManager != null) {
             mBluetoothAdapter = mBluetoothManager.getAdapter();
             if (mBluetoothAdapter != null) {
+                mDeviceCache = BleDeviceCache.getInstance(this);
                 mGattCallback = new BluetoothGattCallback() {
 
                     // 连接建立过程回调
@@ -170,14 +205,17 @@ public class BtLeGattService extends Service {
                             if (status == BluetoothGatt.GATT_SUCCESS) {
                                 if (newState == BluetoothProfile.STATE_CONNECTED) {
 
-                                    mConnectionState = STATE_CONNECTED_NOT_CONFIGURED;
+                                    mStateMachine.onConnected(gatt.getDevice());
+                                    mDeviceCache.onConnected(gatt.getDevice().getAddress(), gatt.getDevice().getName());
                                     mConnectHandler.obtainMessage(MSG_GATT_CONNECT_SUCCESS, gatt.getDevice()).sendToTarget();
 
                                     // 尝试获取设备服务列表，结果由 onServicesDiscovered 回调
                                     mBluetoothGatt.discoverServices();
 
                                 } else {
-                                    mConnectionState = STATE_DISCONNECTED;
+                                    mStateMachine.onDisconnected();
+                                    // 连接已断开，在途的读请求不会再有回调，缓存的值也不再可信
+                                    mReadCache.clear(new IllegalStateException("Connection lost"));
                                     mConnectHandler.obtainMessage(MSG_GATT_LOSE_CONNECT).sendToTarget();
                                 }
                             } else {
@@ -192,6 +230,7 @@ public class BtLeGattService extends Service {
                         if(gatt == mBluetoothGatt){
                             if (status == BluetoothGatt.GATT_SUCCESS) {
                                 // 获取设备服务列表成功
+                                mStateMachine.onServicesDiscovered(gatt.getServices());
                                 mConnectHandler.obtainMessage(MSG_GATT_SERVICES_DISCOVERED_SUCCESS, gatt.getServices()).sendToTarget();
                             } else {
                                 mConnectHandler.obtainMessage(MSG_GATT_SERVICES_DISCOVERED_FAIL).sendToTarget();
@@ -212,7 +251,7 @@ public class BtLeGattService extends Service {
 
                                 if(status == BluetoothGatt.GATT_SUCCESS){
                                     //属性描述符修改成功
-                                    mConnectionState = STATE_CONNECTED_AND_CONFIGURED;
+                                    mStateMachine.onConfigured();
                                     mConnectHandler.obtainMessage(MSG_GATT_DESCRIPTOR_WRITE_SUCCESS).sendToTarget();
                                 } else {
                                     mConnectHandler.obtainMessage(MSG_GATT_DESCRIPTOR_WRITE_FAIL).sendToTarget();
@@ -222,6 +261,20 @@ public class BtLeGattService extends Service {
                         }
                     }
 
+                    @Override
+                    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+                        super.onMtuChanged(gatt, mtu, status);
+                        if (gatt == mBluetoothGatt) {
+                            // MTU 协商结束，此后才能发出下一个 GATT 请求
+                            if (status == BluetoothGatt.GATT_SUCCESS) {
+                                mDeviceCache.onMtuChanged(gatt.getDevice().getAddress(), mtu);
+                                mConnectHandler.obtainMessage(MSG_GATT_MTU_CHANGE_SUCCESS, mtu, 0).sendToTarget();
+                            } else {
+                                mConnectHandler.obtainMessage(MSG_GATT_MTU_CHANGE_FAIL, mtu, status).sendToTarget();
+                            }
+                        }
+                    }
+
                     @Override
                     public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
                         super.onDescriptorRead(gatt, descriptor, status);
@@ -240,19 +293,39 @@ public class BtLeGattService extends Service {
                     //------- 通信过程回调 --------------
                     @Override
                     public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+                        // 读结果交给等待该属性的所有调用方，MSG_DATA_READ_ 消息由 requestRead() 注册的监听器发送
                         if(gatt == mBluetoothGatt){
                             if(status == BluetoothGatt.GATT_SUCCESS){
-                                mTransmitHandler.obtainMessage(MSG_DATA_READ_SUCCESS, characteristic.getValue()).sendToTarget();
+                                mReadCache.onRead(characteristic, characteristic.getValue());
                             } else {
-                                mTransmitHandler.obtainMessage(MSG_DATA_READ_FAIL).sendToTarget();
+                                mReadCache.onReadFail(characteristic, new IllegalStateException("Read failed, status " + status));
                             }
                         }
                     }
 
                     @Override
                     public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+                        // 到达时间必须在回调线程上立即记录，交给 Handler 之后投递延迟会使其失真
+                        long receiveTime = SystemClock.elapsedRealtimeNanos();
                         if (gatt == mBluetoothGatt) {
-                            mTransmitHandler.obtainMessage(MSG_DATA_AVAILABLE , characteristic.getValue()).sendToTarget();
+                            byte[] value = characteristic.getValue();
+                            // 解码得到的数组只属于本次回调，可以直接交给样本，无需再复制
+                            boolean owned = false;
+                            PayloadCodecStage codec = mCodecStage;
+                            // 编解码只作用于 configCommunication 配置的读属性，其他属性(例如电量)的通知原样传递
+                            if (codec != null && characteristic == mReadChara) {
+                                value = codec.decode(value);
+                                if (value == null) {
+                                    // 无法解码的包直接丢弃，计入 PayloadCodecStage#getDecodeErrorCount
+                                    return;
+                                }
+                                owned = true;
+                                // 读缓存保存的是属性读取得到的原始数据，解码后的通知与其格式不同，不能写入
+                            } else {
+                                mReadCache.onNotify(characteristic, value);
+                            }
+                            mTransmitHandler.obtainMessage(MSG_DATA_AVAILABLE , value).sendToTarget();
+                            dispatchSample(characteristic, value, owned, receiveTime);
                         }
                     }
 
@@ -298,7 +371,32 @@ public class BtLeGattService extends Service {
     }
 
     /**
-     * 开启 GATT 连接
+     * 生成带时间戳的样本，经过可选的时钟对齐和抖动缓冲后以 MSG_DATA_SAMPLE_AVAILABLE 消息发出
+     */
+    private void dispatchSample(BluetoothGattCharacteristic characteristic, byte[] value, boolean owned, long receiveTime) {
+        Handler handler = mSampleHandler;
+        if (handler == null || value == null) {
+            return;
+        }
+
+        // 系统会复用属性内部的数组，未解码时样本需要自己的副本
+        BleSample sample = new BleSample(characteristic.getUuid(), owned ? value : value.clone(), receiveTime);
+
+        DeviceClockEstimator estimator = mClockEstimator;
+        if (estimator != null) {
+            estimator.align(sample);
+        }
+
+        SampleJitterBuffer buffer = mJitterBuffer;
+        if (buffer != null) {
+            buffer.offer(sample);
+        } else {
+            handler.obtainMessage(MSG_DATA_SAMPLE_AVAILABLE, sample).sendToTarget();
+        }
+    }
+
+    /**
+     * 开启 GATT 连接，各阶段结果可在调用后通过 {@link #getConnectFuture()} 等方法获取
      * @param address mac 地址
      */
     public void openGATT(@NonNull final String address) {
@@ -310,10 +408,12 @@ public class BtLeGattService extends Service {
             }
 
             final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-            if (device != null) {
+            if (device != null && mStateMachine.start()) {
                 // 直接主动发起连接, 所以将 autoConnect 设置成 false.
                 mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-                mConnectionState = STATE_CONNECTING;
+                if (mBluetoothGatt == null) {
+                    mStateMachine.onDisconnected();
+                }
             }
         }
     }
@@ -325,7 +425,23 @@ public class BtLeGattService extends Service {
         if (mBluetoothGatt != null) {
             mBluetoothGatt.close();
         }
-        mConnectionState = STATE_DISCONNECTED;
+        mStateMachine.onDisconnected();
+        mReadCache.clear(new IllegalStateException("GATT closed"));
+        SampleJitterBuffer buffer = mJitterBuffer;
+        if (buffer != null) {
+            // 丢弃本次连接残留的样本
+            buffer.flush();
+        }
+        DeviceClockEstimator estimator = mClockEstimator;
+        if (estimator != null) {
+            // 重连后设备计数器从新的起点开始，沿用旧的拟合会被误判为大量丢包
+            estimator.reset();
+        }
+        PayloadCodecStage codec = mCodecStage;
+        if (codec != null) {
+            // 编解码历史只在一次连接内有效，两端都从头开始
+            codec.reset();
+        }
         mBluetoothGatt = null;
         mReadChara = null;
         mWriteChara = null;
@@ -335,14 +451,59 @@ public class BtLeGattService extends Service {
      * 查询式通信(即手机需要主动查询设备的值是否改变)是否建立完成
      */
     public boolean isConnectedNotConfigured(){
-        return mConnectionState == STATE_CONNECTED_NOT_CONFIGURED;
+        int state = mStateMachine.getState();
+        return state == STATE_CONNECTED_NOT_CONFIGURED || state == STATE_SERVICES_DISCOVERED || state == STATE_CONFIGURING;
     }
 
     /**
      * 中断式通信(即手机和设备都能主动向对方传输，设备主动传输时，手机这里会通过异步接口来向主线程传输结果)是否建立完成
      */
     public boolean isConnectedAndConfigured(){
-        return mConnectionState == STATE_CONNECTED_AND_CONFIGURED;
+        return mStateMachine.getState() == STATE_CONNECTED_AND_CONFIGURED;
+    }
+
+    /**
+     * 当前的连接状态，即 STATE_ 开头的常量
+     */
+    public int getConnectionState(){
+        return mStateMachine.getState();
+    }
+
+    /**
+     * 本次连接中最近一次进入某个连接状态的时间，用于统计连接各阶段的耗时，每次 openGATT 重新计时
+     * @param state STATE_ 开头的常量
+     * @return SystemClock#elapsedRealtime 时间戳，本次连接尚未进入过该状态返回 0
+     */
+    public long getStateEnterTime(int state){
+        return mStateMachine.getEnterTime(state);
+    }
+
+    /**
+     * 本次连接的 GATT 连接建立结果，成功时携带远端设备
+     */
+    public GattFuture<BluetoothDevice> getConnectFuture(){
+        return mStateMachine.connectedFuture();
+    }
+
+    /**
+     * 本次连接的服务发现结果，成功时携带设备的服务列表
+     */
+    public GattFuture<List<BluetoothGattService>> getDiscoveredFuture(){
+        return mStateMachine.discoveredFuture();
+    }
+
+    /**
+     * 本次连接的通知配置结果，只有在 configCommunication 使能通知后才会成功完成
+     */
+    public GattFuture<Void> getConfiguredFuture(){
+        return mStateMachine.configuredFuture();
+    }
+
+    /**
+     * 本次连接的断开结果，连接断开后完成
+     */
+    public GattFuture<Void> getDisconnectedFuture(){
+        return mStateMachine.disconnectedFuture();
     }
 
     /**
@@ -360,22 +521,122 @@ public class BtLeGattService extends Service {
     }
 
     /**
-     * 尝试主动读取远端设备的属性值(BluetoothGattCharacteristic)，结果通过 BluetoothGattCallback#onCharacteristicRead 接口返回
+     * 接收带到达时间戳的通知样本(BleSample)，以 MSG_DATA_SAMPLE_AVAILABLE 消息返回，为 null 时不生成样本
+     */
+    public void setSampleHandler(Handler handler){
+        SampleJitterBuffer buffer = mJitterBuffer;
+        if (buffer != null) {
+            if (handler != null) {
+                buffer.start(handler);
+            } else {
+                buffer.stop();
+            }
+        }
+        mSampleHandler = handler;
+    }
+
+    /**
+     * 设置设备时钟对齐，样本会带上设备计数器换算后的采样时间以及丢包数，为 null 时不对齐。每次断开连接时估计会自动重置
+     */
+    public void setClockEstimator(DeviceClockEstimator estimator){
+        mClockEstimator = estimator;
+    }
+
+    /**
+     * 设置抖动缓冲，样本按固定周期发出，为 null 时样本到达即发出
+     */
+    public void setJitterBuffer(SampleJitterBuffer buffer){
+        SampleJitterBuffer old = mJitterBuffer;
+        if (old != null) {
+            old.stop();
+        }
+        if (buffer != null && mSampleHandler != null) {
+            buffer.start(mSampleHandler);
+        }
+        mJitterBuffer = buffer;
+    }
+
+    /**
+     * 设置编解码环节，只作用于 configCommunication 配置的一对属性：写属性上经 write() 发送的数据，
+     * 以及读属性上收到的通知。需要远端设备使用相同的包格式，为 null 时收发原始数据。
+     * 其他属性的通知以及属性读取(requestRead)不经过编解码，所以对读属性调用 requestRead 得到的是未解码的原始数据，
+     * 且该属性的通知不会刷新读缓存
+     */
+    public void setCodecStage(PayloadCodecStage stage){
+        if (stage != null) {
+            stage.reset();
+        }
+        mCodecStage = stage;
+    }
+
+    /**
+     * 尝试主动读取远端设备的属性值(BluetoothGattCharacteristic)，结果以 MSG_DATA_READ_SUCCESS / MSG_DATA_READ_FAIL 消息返回
      */
     public void requestRead() {
-        if (mBluetoothGatt != null && mReadChara != null) {
-            mBluetoothGatt.readCharacteristic(mReadChara);
+        if (mReadChara != null) {
+            requestRead(mReadChara).addListener(new GattFuture.Listener<byte[]>() {
+                @Override
+                public void onComplete(GattFuture<byte[]> future) {
+                    Handler handler = mTransmitHandler;
+                    if (handler == null) {
+                        return;
+                    }
+                    if (future.isSuccess()) {
+                        handler.obtainMessage(MSG_DATA_READ_SUCCESS, future.getNow()).sendToTarget();
+                    } else {
+                        handler.obtainMessage(MSG_DATA_READ_FAIL).sendToTarget();
+                    }
+                }
+            }, null);
+        }
+    }
+
+    /**
+     * 读取指定属性的值，同一属性的并发读取共用一次空中请求，缓存有效期内的值直接返回
+     * @param chara 待读取的属性
+     * @return 读取结果，返回的数组由所有调用方共享，不要修改
+     */
+    public GattFuture<byte[]> requestRead(@NonNull BluetoothGattCharacteristic chara) {
+        GattFuture<byte[]> request = new GattFuture<>();
+        BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt == null || mStateMachine.getState() == STATE_DISCONNECTED) {
+            request.fail(new IllegalStateException("GATT not connected"));
+            return request;
+        }
+
+        GattFuture<byte[]> result = mReadCache.begin(chara, request);
+        if (result == request && !request.isDone() && !gatt.readCharacteristic(chara)) {
+            // 系统同一时刻只允许一个 GATT 操作，请求未能发出
+            mReadCache.onReadFail(chara, new IllegalStateException("Read request rejected"));
         }
+        return result;
+    }
+
+    /**
+     * 设置属性读取缓存的有效期，默认为 0，即只合并并发读取而不缓存
+     */
+    public void setReadCacheTtl(long ttl, @NonNull TimeUnit unit) {
+        mReadCache.setTtl(unit.toMillis(ttl));
     }
 
     /**
      * 对外传输的方法，修改远端设备的属性值，即向远端设备发送数据
-     * @param data 待发送的数据,长度不能超过 19 字节
+     * @param data 待发送的数据,长度不能超过 19 字节；设置了编解码环节时，编码后(含 1 字节标识)不能超过 19 字节
      */
     public void write(byte[] data){
-        if (data.length <= SEND_PACKAGE_MAX_SIZE && mBluetoothGatt != null && mWriteChara != null) {
+        if (mBluetoothGatt != null && mWriteChara != null) {
+            PayloadCodecStage codec = mCodecStage;
+            if (codec != null) {
+                data = codec.encode(data);
+            }
+            if (data == null || data.length > SEND_PACKAGE_MAX_SIZE) {
+                return;
+            }
+            mReadCache.invalidate(mWriteChara);
             mWriteChara.setValue(data);
-            mBluetoothGatt.writeCharacteristic(mWriteChara);
+            if (!mBluetoothGatt.writeCharacteristic(mWriteChara) && codec != null) {
+                codec.discardLastEncoded();
+            }
         }
     }
 
@@ -384,10 +645,12 @@ public class BtLeGattService extends Service {
      * @param read 读属性
      * @param write 写属性
      * @param isNotify 是否使能读属性的通知功能
-     * @return 是否成功配置通信功能
+     * @return 是否成功配置通信功能，服务发现完成前调用直接返回 false
      */
     public boolean configCommunication(BluetoothGattCharacteristic read, BluetoothGattCharacteristic write, boolean isNotify) {
-        if (mBluetoothAdapter != null && mBluetoothGatt != null) {
+        int state = mStateMachine.getState();
+        if (mBluetoothAdapter != null && mBluetoothGatt != null
+                && (state == STATE_SERVICES_DISCOVERED || state == STATE_CONNECTED_AND_CONFIGURED)) {
 
             mReadChara = read;
             mWriteChara = write;
@@ -397,19 +660,69 @@ public class BtLeGattService extends Service {
 
             if (isNotify) {
                 // 使能通知
-                if( mBluetoothGatt.setCharacteristicNotification(mReadChara, true)){
+                if( mBluetoothGatt.setCharacteristicNotification(mReadChara, true) && mStateMachine.beginConfigure()){
                     // 配置描述符
                     BluetoothGattDescriptor descriptor = mReadChara.getDescriptor(UUID.fromString(CLIENT_CHARACTERISTIC_CONFIG));
                     descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                    return mBluetoothGatt.writeDescriptor(descriptor);
+                    if (mBluetoothGatt.writeDescriptor(descriptor)) {
+                        rememberLayout(read, write, true);
+                        return true;
+                    }
+                    mStateMachine.abortConfigure();
                 }
             } else {
+                rememberLayout(read, write, false);
                 return true;
             }
         }
         return false;
     }
 
+    /**
+     * 按设备缓存中记录的服务与属性配置通信，省去遍历 getGattServiceList() 查找属性的过程
+     * @return 是否成功配置，当前设备没有记录或记录的属性已不存在时返回 false，需要调用方自行查找属性
+     */
+    public boolean configCommunication() {
+        BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt == null) {
+            return false;
+        }
+        BleDeviceRecord record = mDeviceCache.getDevice(gatt.getDevice().getAddress());
+        if (record == null || !record.hasLayout()) {
+            return false;
+        }
+        BluetoothGattService service = gatt.getService(record.getServiceUuid());
+        if (service == null) {
+            return false;
+        }
+        BluetoothGattCharacteristic read = service.getCharacteristic(record.getReadUuid());
+        BluetoothGattCharacteristic write = service.getCharacteristic(record.getWriteUuid());
+        return read != null && write != null && configCommunication(read, write, record.isNotify());
+    }
+
+    /**
+     * 记录本次配置使用的服务与属性，下次连接时可直接使用
+     */
+    private void rememberLayout(BluetoothGattCharacteristic read, BluetoothGattCharacteristic write, boolean isNotify) {
+        BluetoothGattService service = read.getService();
+        if (service != null && service == write.getService()) {
+            mDeviceCache.onConfigured(mBluetoothGatt.getDevice().getAddress(), service.getUuid(), read.getUuid(), write.getUuid(), isNotify);
+        }
+    }
+
+    /**
+     * 请求修改 MTU，仅 Android 5.0 及以上支持。可以传入设备缓存中记录的上次协商结果(BleDeviceRecord#getMtu())，
+     * 结果以 MSG_GATT_MTU_CHANGE_SUCCESS(arg1 为协商得到的 MTU) / MSG_GATT_MTU_CHANGE_FAIL 消息返回，成功时同时记录到设备缓存中。
+     * 同一时间只能有一个 GATT 请求在途，收到结果消息之前发出的读写请求会被系统拒绝
+     * @return 请求是否成功发出
+     */
+    public boolean requestMtu(int mtu) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && mBluetoothGatt != null) {
+            return mBluetoothGatt.requestMtu(mtu);
+        }
+        return false;
+    }
+
     /**
      尝试从已连接的设备获取 GATT 服务列表，该方法在 BluetoothGatt#discoverServices() (发现服务) 成功后才能调用
      *
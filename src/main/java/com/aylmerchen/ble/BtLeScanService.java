@@ -18,6 +18,7 @@ import android.support.annotation.Nullable;
 import android.support.v4.util.ArraySet;
 import android.util.Log;
 
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -88,6 +89,11 @@ public class BtLeScanService extends Service {
      */
     private BluetoothAdapter.LeScanCallback oldScanCallback;
 
+    /**
+     * 已知设备的磁盘缓存，扫描到的设备会记录其中
+     */
+    private BleDeviceCache mDeviceCache;
+
     /**
      * 向前台返回的 binder
      */
@@ -111,6 +117,8 @@ public class BtLeScanService extends Service {
             // 初始化 binder
             mBinder = new ScanBinder();
 
+            mDeviceCache = BleDeviceCache.getInstance(this);
+
             // TODO 服务初始化成功，创建定时线程池, 应阿里规范的要求，以后再自定义线程池吧，先把论文肝了
             pool = Executors.newSingleThreadScheduledExecutor();
 
@@ -126,6 +134,7 @@ public class BtLeScanService extends Service {
                         String deviceAddress = result.getDevice().getAddress();
                         if ( deviceAddress != null && deviceSet != null && !deviceSet.contains(deviceAddress) && result.getDevice().getName() != null) {
                             deviceSet.add(deviceAddress);
+                            mDeviceCache.onSeen(deviceAddress, result.getDevice().getName(), result.getRssi());
                             scanHandler.obtainMessage(MSG_SCAN_DEVICE_FOUND, result.getDevice()).sendToTarget();
                         }
                     }
@@ -177,6 +186,7 @@ public class BtLeScanService extends Service {
                         String deviceAddress = device.getAddress();
                         if ( deviceAddress != null && deviceSet != null && !deviceSet.contains(deviceAddress) && device.getName() != null) {
                             deviceSet.add(deviceAddress);
+                            mDeviceCache.onSeen(deviceAddress, device.getName(), rssi);
                             scanHandler.obtainMessage(MSG_SCAN_DEVICE_FOUND, device).sendToTarget();
                         }
                     }
@@ -255,6 +265,14 @@ public class BtLeScanService extends Service {
         scanHandler = handler;
     }
 
+    /**
+     * 之前扫描到或连接过的设备，按最近出现时间从新到旧排列，可在扫描前直接展示，
+     * 或不经扫描直接用 BtLeGattService#openGATT 连接。缓存在服务创建时即开始后台读取，读取尚未完成时会等待
+     */
+    public List<BleDeviceRecord> getKnownDevices(){
+        return mDeviceCache.getDevices();
+    }
+
     /**
      * 开始扫描，扫描默认时间
      */
@@ -0,0 +1,152 @@
+package com.aylmerchen.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 属性读取的合并与缓存：
+ * 同一属性的并发读取共用一次在途请求，最近读到(或通过通知收到)的值在有效期内直接返回，不再占用空中带宽
+ * @author AylmerChen
+ * @date 2018/4/17
+ */
+final class CharacteristicReadCache {
+
+    private static final class Entry {
+        byte[] value;
+        long updateTime;
+        GattFuture<byte[]> inFlight;
+    }
+
+    /**
+     * 以属性对象为键，同一次连接中系统返回的属性对象是固定的，断开后整体清空
+     */
+    private final Map<BluetoothGattCharacteristic, Entry> mEntries = new HashMap<>();
+
+    /**
+     * 缓存有效期，单位毫秒，0 表示不缓存，只合并在途请求
+     */
+    private volatile long mTtlMillis;
+
+    synchronized void setTtl(long ttlMillis) {
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * 开始一次读取
+     * @param request 调用方新建的读结果
+     * @return 缓存命中时返回已完成的结果，存在在途请求时返回该请求的结果，
+     *         否则登记并返回 request 本身，此时由调用方负责真正发出读请求
+     */
+    synchronized GattFuture<byte[]> begin(BluetoothGattCharacteristic chara, GattFuture<byte[]> request) {
+        Entry entry = mEntries.get(chara);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(chara, entry);
+        }
+
+        if (entry.inFlight != null) {
+            return entry.inFlight;
+        }
+
+        if (entry.value != null && SystemClock.elapsedRealtime() - entry.updateTime < mTtlMillis) {
+            request.complete(entry.value);
+            return request;
+        }
+
+        entry.inFlight = request;
+        return request;
+    }
+
+    /**
+     * 读请求返回，更新缓存并完成在途请求
+     */
+    void onRead(BluetoothGattCharacteristic chara, byte[] value) {
+        GattFuture<byte[]> inFlight;
+        byte[] copy = value == null ? null : value.clone();
+        synchronized (this) {
+            Entry entry = mEntries.get(chara);
+            if (entry == null) {
+                return;
+            }
+            store(entry, copy);
+            inFlight = entry.inFlight;
+            entry.inFlight = null;
+        }
+        if (inFlight != null) {
+            inFlight.complete(copy);
+        }
+    }
+
+    /**
+     * 读请求失败或未能发出
+     */
+    void onReadFail(BluetoothGattCharacteristic chara, Throwable cause) {
+        GattFuture<byte[]> inFlight = null;
+        synchronized (this) {
+            Entry entry = mEntries.get(chara);
+            if (entry != null) {
+                inFlight = entry.inFlight;
+                entry.inFlight = null;
+            }
+        }
+        if (inFlight != null) {
+            inFlight.fail(cause);
+        }
+    }
+
+    /**
+     * 收到属性通知，只刷新缓存，不影响在途请求
+     */
+    void onNotify(BluetoothGattCharacteristic chara, byte[] value) {
+        // 不缓存时通知的值永远不会被读取，省去每个通知的复制
+        if (value == null || mTtlMillis == 0) {
+            return;
+        }
+        byte[] copy = value.clone();
+        synchronized (this) {
+            Entry entry = mEntries.get(chara);
+            if (entry == null) {
+                entry = new Entry();
+                mEntries.put(chara, entry);
+            }
+            store(entry, copy);
+        }
+    }
+
+    /**
+     * 作废某个属性的缓存值，例如向该属性写入了新值
+     */
+    synchronized void invalidate(BluetoothGattCharacteristic chara) {
+        Entry entry = mEntries.get(chara);
+        if (entry != null) {
+            entry.value = null;
+        }
+    }
+
+    /**
+     * 清空所有缓存值，在途请求以失败结束
+     */
+    void clear(Throwable cause) {
+        Map<BluetoothGattCharacteristic, Entry> entries;
+        synchronized (this) {
+            if (mEntries.isEmpty()) {
+                return;
+            }
+            entries = new HashMap<>(mEntries);
+            mEntries.clear();
+        }
+        for (Entry entry : entries.values()) {
+            if (entry.inFlight != null) {
+                entry.inFlight.fail(cause);
+            }
+        }
+    }
+
+    private static void store(Entry entry, byte[] value) {
+        entry.value = value;
+        entry.updateTime = SystemClock.elapsedRealtime();
+    }
+}
@@ -0,0 +1,147 @@
+package com.aylmerchen.ble;
+
+/**
+ * 面向数值采样流的差分编码：把包中定宽的有符号整数采样与上一个采样作差，
+ * 差值经 zigzag 映射后以 varint 输出，缓慢变化的数据每个采样通常只需 1 字节
+ * @author AylmerChen
+ * @date 2018/4/17
+ */
+public final class DeltaVarintCodec implements PayloadCodec {
+
+    public static final int ID = 1;
+
+    private final int mSampleBytes;
+    private final boolean mLittleEndian;
+
+    /**
+     * 上一个采样值，编码端与解码端各自维护
+     */
+    private int mPrevious;
+
+    /**
+     * @param sampleBytes 单个采样的字节数，1、2 或 4
+     * @param littleEndian 采样是否为小端
+     */
+    public DeltaVarintCodec(int sampleBytes, boolean littleEndian) {
+        if (sampleBytes != 1 && sampleBytes != 2 && sampleBytes != 4) {
+            throw new IllegalArgumentException("Unsupported sample size " + sampleBytes);
+        }
+        mSampleBytes = sampleBytes;
+        mLittleEndian = littleEndian;
+    }
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public int encode(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLimit) {
+        if (srcLen % mSampleBytes != 0) {
+            observe(src, srcOff, srcLen);
+            return -1;
+        }
+
+        int out = dstOff;
+        int end = dstOff + dstLimit;
+        boolean overflow = false;
+        for (int i = srcOff; i < srcOff + srcLen; i += mSampleBytes) {
+            int value = readSample(src, i);
+            int delta = truncate(value - mPrevious);
+            mPrevious = value;
+            if (overflow) {
+                continue;
+            }
+
+            int zigzag = (delta << 1) ^ (delta >> 31);
+            while ((zigzag & ~0x7F) != 0) {
+                if (out >= end) {
+                    overflow = true;
+                    break;
+                }
+                dst[out++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            if (!overflow) {
+                if (out >= end) {
+                    overflow = true;
+                } else {
+                    dst[out++] = (byte) zigzag;
+                }
+            }
+        }
+        return overflow ? -1 : out - dstOff;
+    }
+
+    @Override
+    public int decode(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLimit) {
+        int in = srcOff;
+        int end = srcOff + srcLen;
+        int out = dstOff;
+        while (in < end) {
+            int zigzag = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (in >= end || shift > 28) {
+                    return -1;
+                }
+                b = src[in++];
+                zigzag |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            if (out + mSampleBytes > dstOff + dstLimit) {
+                return -1;
+            }
+            int delta = (zigzag >>> 1) ^ -(zigzag & 1);
+            mPrevious = truncate(mPrevious + delta);
+            writeSample(dst, out, mPrevious);
+            out += mSampleBytes;
+        }
+        return out - dstOff;
+    }
+
+    @Override
+    public void observe(byte[] raw, int off, int len) {
+        int last = off + len - len % mSampleBytes - mSampleBytes;
+        if (last >= off) {
+            mPrevious = readSample(raw, last);
+        }
+    }
+
+    @Override
+    public void reset() {
+        mPrevious = 0;
+    }
+
+    /**
+     * 按采样宽度截断并做符号扩展
+     */
+    private int truncate(int value) {
+        switch (mSampleBytes) {
+            case 1:
+                return (byte) value;
+            case 2:
+                return (short) value;
+            default:
+                return value;
+        }
+    }
+
+    private int readSample(byte[] data, int off) {
+        int value = 0;
+        for (int i = 0; i < mSampleBytes; i++) {
+            int index = mLittleEndian ? off + mSampleBytes - 1 - i : off + i;
+            value = (value << 8) | (data[index] & 0xFF);
+        }
+        return truncate(value);
+    }
+
+    private void writeSample(byte[] data, int off, int value) {
+        for (int i = 0; i < mSampleBytes; i++) {
+            int shift = 8 * (mLittleEndian ? i : mSampleBytes - 1 - i);
+            data[off + i] = (byte) (value >> shift);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.aylmerchen.ble;
+
+/**
+ * 设备时钟对齐：从数据包中解析设备自带的序号或时间戳计数器，
+ * 用指数遗忘的最小二乘拟合 到达时间 = 偏移 + 斜率 * 设备时间，得到手机时钟下的采样时间、时钟漂移以及丢包情况。
+ * 对齐后的时间包含平均投递延迟，但不再受单个包投递抖动的影响
+ * @author AylmerChen
+ * @date 2018/4/17
+ */
+public final class DeviceClockEstimator {
+
+    /**
+     * 默认遗忘因子，约等于参考最近 1000 个样本
+     */
+    private static final double DEFAULT_FORGETTING = 0.999;
+
+    private final int mCounterOffset;
+    private final int mCounterBytes;
+    private final boolean mLittleEndian;
+    private final long mCounterMask;
+    private final double mNanosPerTick;
+    private final long mTicksPerSample;
+    private final double mForgetting;
+
+    private boolean mStarted;
+    private long mLastRaw;
+    private long mUnwrapped;
+    private long mFirstReceiveNanos;
+
+    /**
+     * 指数加权的均值与协方差
+     */
+    private double mWeight;
+    private double mMeanX;
+    private double mMeanY;
+    private double mCxx;
+    private double mCxy;
+
+    private long mGapCount;
+    private long mLostCount;
+
+    /**
+     * @param counterOffset 计数器在数据包中的起始字节
+     * @param counterBytes 计数器长度，1 到 4 字节
+     * @param littleEndian 计数器是否为小端
+     * @param ticksPerSecond 计数器每秒的增量，序号计数器即为采样率
+     * @param ticksPerSample 相邻两个包之间计数器的正常增量，用于判断丢包
+     */
+    public DeviceClockEstimator(int counterOffset, int counterBytes, boolean littleEndian, double ticksPerSecond, long ticksPerSample) {
+        if (counterOffset < 0 || counterBytes < 1 || counterBytes > 4 || ticksPerSecond <= 0 || ticksPerSample < 1) {
+            throw new IllegalArgumentException("Invalid counter layout");
+        }
+        mCounterOffset = counterOffset;
+        mCounterBytes = counterBytes;
+        mLittleEndian = littleEndian;
+        mCounterMask = (1L << (counterBytes * 8)) - 1;
+        mNanosPerTick = 1e9 / ticksPerSecond;
+        mTicksPerSample = ticksPerSample;
+        mForgetting = DEFAULT_FORGETTING;
+    }
+
+    /**
+     * 用样本更新估计，并写回该样本的设备计数器、对齐时间和丢包数
+     */
+    synchronized void align(BleSample sample) {
+        byte[] data = sample.getData();
+        if (data == null || data.length < mCounterOffset + mCounterBytes) {
+            return;
+        }
+
+        long raw = readCounter(data);
+        long receive = sample.getReceiveTimeNanos();
+        int lost = 0;
+
+        if (!mStarted) {
+            mStarted = true;
+            mUnwrapped = 0;
+            mFirstReceiveNanos = receive;
+        } else {
+            long delta = (raw - mLastRaw) & mCounterMask;
+            if (delta > mCounterMask / 2) {
+                // 计数器倒退，说明设备重启或乱序，重新开始估计
+                resetLocked();
+                mStarted = true;
+                mFirstReceiveNanos = receive;
+            } else {
+                mUnwrapped += delta;
+                if (delta > mTicksPerSample) {
+                    long missing = delta / mTicksPerSample - 1;
+                    if (missing > 0) {
+                        mGapCount++;
+                        mLostCount += missing;
+                        lost = (int) Math.min(missing, Integer.MAX_VALUE);
+                    }
+                }
+            }
+        }
+        mLastRaw = raw;
+
+        double x = mUnwrapped * mNanosPerTick;
+        double y = receive - mFirstReceiveNanos;
+
+        mWeight = mForgetting * mWeight + 1;
+        double dx = x - mMeanX;
+        mMeanX += dx / mWeight;
+        mMeanY += (y - mMeanY) / mWeight;
+        mCxx = mForgetting * mCxx + dx * (x - mMeanX);
+        mCxy = mForgetting * mCxy + dx * (y - mMeanY);
+
+        sample.setAlignment(mUnwrapped, mFirstReceiveNanos + (long) (interceptLocked() + slopeLocked() * x), lost);
+    }
+
+    private long readCounter(byte[] data) {
+        long value = 0;
+        for (int i = 0; i < mCounterBytes; i++) {
+            int index = mLittleEndian ? mCounterOffset + mCounterBytes - 1 - i : mCounterOffset + i;
+            value = (value << 8) | (data[index] & 0xFF);
+        }
+        return value;
+    }
+
+    private double slopeLocked() {
+        return mCxx > 0 ? mCxy / mCxx : 1.0;
+    }
+
+    private double interceptLocked() {
+        return mMeanY - slopeLocked() * mMeanX;
+    }
+
+    /**
+     * 设备时钟相对手机时钟的漂移，单位 ppm，正数表示设备时钟偏慢
+     */
+    public synchronized double getDriftPpm() {
+        return (slopeLocked() - 1.0) * 1e6;
+    }
+
+    /**
+     * 设备计数器起点(展开后为 0)对应的手机时间，SystemClock#elapsedRealtimeNanos 时间戳
+     */
+    public synchronized long getOffsetNanos() {
+        return mFirstReceiveNanos + (long) interceptLocked();
+    }
+
+    /**
+     * 检测到的丢包次数(连续丢失算一次)
+     */
+    public synchronized long getGapCount() {
+        return mGapCount;
+    }
+
+    /**
+     * 检测到的丢包总数
+     */
+    public synchronized long getLostCount() {
+        return mLostCount;
+    }
+
+    public synchronized void reset() {
+        resetLocked();
+        mGapCount = 0;
+        mLostCount = 0;
+    }
+
+    private void resetLocked() {
+        mStarted = false;
+        mUnwrapped = 0;
+        mWeight = 0;
+        mMeanX = 0;
+        mMeanY = 0;
+        mCxx = 0;
+        mCxy = 0;
+    }
+}
@@ -0,0 +1,171 @@
+package com.aylmerchen.ble;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 蓝牙异步操作(连接的某一阶段、属性读取等)的结果，可以阻塞等待，也可以注册监听器进行链式处理，
+ * 由蓝牙回调所在的线程完成
+ * @author AylmerChen
+ * @date 2018/4/17
+ */
+public final class GattFuture<V> implements Future<V> {
+
+    /**
+     * 阶段完成(成功或失败)时的回调
+     */
+    public interface Listener<V> {
+        void onComplete(GattFuture<V> future);
+    }
+
+    private final CountDownLatch mLatch = new CountDownLatch(1);
+
+    /**
+     * 完成前注册的监听器及其对应的 Handler，完成后清空
+     */
+    private List<Listener<V>> mListeners = new ArrayList<>();
+    private List<Handler> mListenerHandlers = new ArrayList<>();
+
+    private boolean mDone;
+    private V mValue;
+    private Throwable mCause;
+
+    /**
+     * 以成功结果完成
+     * @return 是否由本次调用完成，已完成过则返回 false
+     */
+    boolean complete(V value) {
+        return finish(value, null);
+    }
+
+    /**
+     * 以失败原因完成
+     * @return 是否由本次调用完成，已完成过则返回 false
+     */
+    boolean fail(@NonNull Throwable cause) {
+        return finish(null, cause);
+    }
+
+    private boolean finish(V value, Throwable cause) {
+        List<Listener<V>> listeners;
+        List<Handler> handlers;
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mDone = true;
+            mValue = value;
+            mCause = cause;
+            listeners = mListeners;
+            handlers = mListenerHandlers;
+            mListeners = null;
+            mListenerHandlers = null;
+        }
+        mLatch.countDown();
+
+        for (int i = 0; i < listeners.size(); i++) {
+            dispatch(listeners.get(i), handlers.get(i));
+        }
+        return true;
+    }
+
+    /**
+     * 注册完成监听器，若已完成则立即分发
+     * @param listener 监听器
+     * @param handler 执行回调的线程所对应的 Handler, 为 null 时在完成结果的线程(通常是蓝牙 Binder 线程)上直接回调
+     */
+    public void addListener(@NonNull Listener<V> listener, @Nullable Handler handler) {
+        synchronized (this) {
+            if (!mDone) {
+                mListeners.add(listener);
+                mListenerHandlers.add(handler);
+                return;
+            }
+        }
+        dispatch(listener, handler);
+    }
+
+    private void dispatch(final Listener<V> listener, Handler handler) {
+        if (handler == null) {
+            listener.onComplete(this);
+        } else {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onComplete(GattFuture.this);
+                }
+            });
+        }
+    }
+
+    /**
+     * 蓝牙操作一旦发出就无法撤回，所以不支持取消
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * 是否已成功完成
+     */
+    public synchronized boolean isSuccess() {
+        return mDone && mCause == null;
+    }
+
+    /**
+     * 失败原因，未完成或成功时返回 null
+     */
+    @Nullable
+    public synchronized Throwable getCause() {
+        return mCause;
+    }
+
+    /**
+     * 不阻塞地获取结果，未完成或失败时返回 null
+     */
+    @Nullable
+    public synchronized V getNow() {
+        return mValue;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        mLatch.await();
+        return result();
+    }
+
+    @Override
+    public V get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mLatch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private synchronized V result() throws ExecutionException {
+        if (mCause != null) {
+            throw new ExecutionException(mCause);
+        }
+        return mValue;
+    }
+}
@@ -0,0 +1,252 @@
+package com.aylmerchen.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattService;
+import android.os.SystemClock;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.aylmerchen.ble.BtLeGattService.STATE_CONFIGURING;
+import static com.aylmerchen.ble.BtLeGattService.STATE_CONNECTED_AND_CONFIGURED;
+import static com.aylmerchen.ble.BtLeGattService.STATE_CONNECTED_NOT_CONFIGURED;
+import static com.aylmerchen.ble.BtLeGattService.STATE_CONNECTING;
+import static com.aylmerchen.ble.BtLeGattService.STATE_DISCONNECTED;
+import static com.aylmerchen.ble.BtLeGattService.STATE_SERVICES_DISCOVERED;
+
+/**
+ * GATT 连接状态机，状态由蓝牙 Binder 线程写入、由外部线程读取，
+ * 所以所有迁移都通过 CAS 完成，不合法的迁移(例如服务发现完成前就配置通知)会被拒绝
+ * @author AylmerChen
+ * @date 2018/4/17
+ */
+final class GattStateMachine {
+
+    private static final int STATE_COUNT = 6;
+
+    /**
+     * 合法的状态迁移表，LEGAL[from][to]，任意状态都可以迁移到断开状态
+     */
+    private static final boolean[][] LEGAL = new boolean[STATE_COUNT][STATE_COUNT];
+
+    static {
+        for (int i = 0; i < STATE_COUNT; i++) {
+            LEGAL[i][STATE_DISCONNECTED] = true;
+        }
+        LEGAL[STATE_DISCONNECTED][STATE_DISCONNECTED] = false;
+
+        LEGAL[STATE_DISCONNECTED][STATE_CONNECTING] = true;
+        LEGAL[STATE_CONNECTING][STATE_CONNECTED_NOT_CONFIGURED] = true;
+        LEGAL[STATE_CONNECTED_NOT_CONFIGURED][STATE_SERVICES_DISCOVERED] = true;
+        LEGAL[STATE_SERVICES_DISCOVERED][STATE_CONFIGURING] = true;
+        LEGAL[STATE_CONFIGURING][STATE_SERVICES_DISCOVERED] = true;
+        LEGAL[STATE_CONFIGURING][STATE_CONNECTED_AND_CONFIGURED] = true;
+        LEGAL[STATE_CONNECTED_AND_CONFIGURED][STATE_CONFIGURING] = true;
+    }
+
+    /**
+     * 一次连接尝试(从 openGATT 到断开)对应的各阶段结果
+     */
+    private static final class Generation {
+        final GattFuture<BluetoothDevice> connected = new GattFuture<>();
+        final GattFuture<List<BluetoothGattService>> discovered = new GattFuture<>();
+        final GattFuture<Void> configured = new GattFuture<>();
+        final GattFuture<Void> disconnected = new GattFuture<>();
+    }
+
+    /**
+     * 状态与其所属的一轮阶段结果，作为整体原子替换，
+     * 保证断开回调只会结束它所迁移掉的那一轮结果，而不会误伤随后 openGATT 新建的一轮
+     */
+    private static final class Snapshot {
+        final int state;
+        final Generation generation;
+
+        /**
+         * 配置中(STATE_CONFIGURING)时记录开始配置前的状态，配置请求未能发出时回退到该状态
+         */
+        final int configureFrom;
+
+        /**
+         * 本轮连接中每个状态最近一次进入的时间(SystemClock#elapsedRealtime)，0 表示本轮尚未进入，
+         * 随状态一起替换，创建后不再修改
+         */
+        final long[] enterTime;
+
+        Snapshot(int state, Generation generation, int configureFrom, long[] enterTime) {
+            this.state = state;
+            this.generation = generation;
+            this.configureFrom = configureFrom;
+            this.enterTime = enterTime;
+        }
+
+        /**
+         * 进入新状态，记录进入时间
+         */
+        Snapshot enter(int to, Generation generation, int configureFrom) {
+            long[] times = enterTime.clone();
+            times[to] = SystemClock.elapsedRealtime();
+            return new Snapshot(to, generation, configureFrom, times);
+        }
+    }
+
+    private final AtomicReference<Snapshot> mSnapshot;
+
+    GattStateMachine() {
+        Generation initial = new Generation();
+        failPending(initial, STATE_DISCONNECTED);
+        initial.disconnected.complete(null);
+        Snapshot empty = new Snapshot(STATE_DISCONNECTED, initial, STATE_DISCONNECTED, new long[STATE_COUNT]);
+        mSnapshot = new AtomicReference<>(empty.enter(STATE_DISCONNECTED, initial, STATE_DISCONNECTED));
+    }
+
+    int getState() {
+        return mSnapshot.get().state;
+    }
+
+    /**
+     * 本轮连接中状态最近一次进入的时间，start() 时清零；配置未能发出而回退时不算重新进入
+     * @return SystemClock#elapsedRealtime 时间戳，本轮尚未进入过该状态返回 0
+     */
+    long getEnterTime(int state) {
+        return mSnapshot.get().enterTime[state];
+    }
+
+    GattFuture<BluetoothDevice> connectedFuture() {
+        return mSnapshot.get().generation.connected;
+    }
+
+    GattFuture<List<BluetoothGattService>> discoveredFuture() {
+        return mSnapshot.get().generation.discovered;
+    }
+
+    GattFuture<Void> configuredFuture() {
+        return mSnapshot.get().generation.configured;
+    }
+
+    GattFuture<Void> disconnectedFuture() {
+        return mSnapshot.get().generation.disconnected;
+    }
+
+    /**
+     * 开始一次新的连接，只能从断开状态发起，并生成新一轮的阶段结果
+     */
+    boolean start() {
+        Snapshot current = mSnapshot.get();
+        if (current.state != STATE_DISCONNECTED) {
+            return false;
+        }
+        Generation generation = new Generation();
+        Snapshot fresh = new Snapshot(STATE_CONNECTING, generation, STATE_CONNECTING, new long[STATE_COUNT]);
+        return swap(current, fresh.enter(STATE_CONNECTING, generation, STATE_CONNECTING));
+    }
+
+    boolean onConnected(BluetoothDevice device) {
+        Snapshot next = moveTo(STATE_CONNECTING, STATE_CONNECTED_NOT_CONFIGURED);
+        if (next != null) {
+            next.generation.connected.complete(device);
+            return true;
+        }
+        return false;
+    }
+
+    boolean onServicesDiscovered(List<BluetoothGattService> services) {
+        Snapshot next = moveTo(STATE_CONNECTED_NOT_CONFIGURED, STATE_SERVICES_DISCOVERED);
+        if (next != null) {
+            next.generation.discovered.complete(services);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 开始配置通知描述符，服务发现完成后或已配置完成(重新配置)时才允许
+     */
+    boolean beginConfigure() {
+        return moveTo(STATE_SERVICES_DISCOVERED, STATE_CONFIGURING) != null
+                || moveTo(STATE_CONNECTED_AND_CONFIGURED, STATE_CONFIGURING) != null;
+    }
+
+    /**
+     * 描述符写请求未能发出时回退到开始配置前的状态，重新配置失败时之前的通知配置依然有效
+     */
+    boolean abortConfigure() {
+        Snapshot current = mSnapshot.get();
+        if (current.state != STATE_CONFIGURING) {
+            return false;
+        }
+        // 回到原状态而不是重新进入，保留该状态原来的进入时间
+        return swap(current, new Snapshot(current.configureFrom, current.generation, current.configureFrom, current.enterTime));
+    }
+
+    boolean onConfigured() {
+        Snapshot next = moveTo(STATE_CONFIGURING, STATE_CONNECTED_AND_CONFIGURED);
+        if (next != null) {
+            next.generation.configured.complete(null);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 从任意状态迁移到断开状态，尚未完成的阶段以失败结束
+     * @return 是否发生了迁移，已经是断开状态则返回 false
+     */
+    boolean onDisconnected() {
+        Snapshot current;
+        do {
+            current = mSnapshot.get();
+            if (current.state == STATE_DISCONNECTED) {
+                return false;
+            }
+        } while (!swap(current, current.enter(STATE_DISCONNECTED, current.generation, STATE_DISCONNECTED)));
+
+        // 只结束本次迁移掉的那一轮结果
+        failPending(current.generation, current.state);
+        current.generation.disconnected.complete(null);
+        return true;
+    }
+
+    /**
+     * 在同一轮连接内迁移状态
+     * @return 迁移后的快照，状态不符或迁移不合法时返回 null
+     */
+    private Snapshot moveTo(int from, int to) {
+        Snapshot current = mSnapshot.get();
+        if (current.state != from || !LEGAL[from][to]) {
+            return null;
+        }
+        Snapshot next = current.enter(to, current.generation, from);
+        return swap(current, next) ? next : null;
+    }
+
+    private boolean swap(Snapshot current, Snapshot next) {
+        return mSnapshot.compareAndSet(current, next);
+    }
+
+    private static void failPending(Generation generation, int state) {
+        IllegalStateException cause = new IllegalStateException("Disconnected while " + stateName(state));
+        generation.connected.fail(cause);
+        generation.discovered.fail(cause);
+        generation.configured.fail(cause);
+    }
+
+    static String stateName(int state) {
+        switch (state) {
+            case STATE_DISCONNECTED:
+                return "DISCONNECTED";
+            case STATE_CONNECTING:
+                return "CONNECTING";
+            case STATE_CONNECTED_NOT_CONFIGURED:
+                return "CONNECTED_NOT_CONFIGURED";
+            case STATE_SERVICES_DISCOVERED:
+                return "SERVICES_DISCOVERED";
+            case STATE_CONFIGURING:
+                return "CONFIGURING";
+            case STATE_CONNECTED_AND_CONFIGURED:
+                return "CONNECTED_AND_CONFIGURED";
+            default:
+                return "UNKNOWN(" + state + ")";
+        }
+    }
+}
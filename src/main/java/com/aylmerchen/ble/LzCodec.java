@@ -0,0 +1,188 @@
+package com.aylmerchen.ble;
+
+import java.util.Arrays;
+
+/**
+ * 轻量的 LZ77 流式压缩，适合日志等重复内容较多的批量数据。
+ * 两端维护同一个跨包的历史窗口，所以即使单个包只有十几个字节，也能引用之前包中出现过的内容。
+ * <p>
+ * 编码格式，按字节读取：
+ * 0LLLLLLL 之后跟 L+1 个字面字节；
+ * 1LLLLOOO OOOOOOOO 表示复制 L+3 个字节，起点在当前位置之前 O+1 处
+ * @author AylmerChen
+ * @date 2018/4/17
+ */
+public final class LzCodec implements PayloadCodec {
+
+    public static final int ID = 2;
+
+    private static final int WINDOW_SIZE = 2048;
+    private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+    private static final int MIN_MATCH = 3;
+    private static final int MAX_MATCH = MIN_MATCH + 15;
+    private static final int MAX_LITERALS = 128;
+
+    private static final int HASH_BITS = 10;
+
+    /**
+     * 历史窗口(环形)，以及已写入窗口的总字节数。
+     * 位置计数允许回绕，只通过差值比较；重置时窗口清零，两端未写入过的位置读到的都是 0
+     */
+    private final byte[] mWindow = new byte[WINDOW_SIZE];
+    private int mPosition;
+
+    /**
+     * 编码端使用：3 字节前缀的哈希 -> 最近一次出现的位置，候选位置总要逐字节校验，所以不需要空标记
+     */
+    private final int[] mHashHead = new int[1 << HASH_BITS];
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public int encode(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLimit) {
+        int out = dstOff;
+        int end = dstOff + dstLimit;
+        int base = mPosition;
+        int literalStart = 0;
+        int i = 0;
+        boolean overflow = false;
+
+        while (i < srcLen) {
+            int matchLength = 0;
+            int distance = 0;
+
+            if (i + MIN_MATCH <= srcLen) {
+                int hash = hash(src[srcOff + i], src[srcOff + i + 1], src[srcOff + i + 2]);
+                int candidate = mHashHead[hash];
+                int current = base + i;
+                mHashHead[hash] = current;
+
+                if (current - candidate > 0 && current - candidate <= WINDOW_SIZE) {
+                    int limit = Math.min(MAX_MATCH, srcLen - i);
+                    while (matchLength < limit
+                            && byteAt(src, srcOff, base, candidate + matchLength) == src[srcOff + i + matchLength]) {
+                        matchLength++;
+                    }
+                    distance = current - candidate;
+                }
+            }
+
+            if (matchLength >= MIN_MATCH) {
+                out = flushLiterals(src, srcOff + literalStart, i - literalStart, dst, out, end);
+                if (out < 0 || out + 2 > end) {
+                    overflow = true;
+                    break;
+                }
+                dst[out++] = (byte) (0x80 | ((matchLength - MIN_MATCH) << 3) | ((distance - 1) >> 8));
+                dst[out++] = (byte) (distance - 1);
+                appendToWindow(src, srcOff + i, matchLength);
+                i += matchLength;
+                literalStart = i;
+            } else {
+                appendToWindow(src, srcOff + i, 1);
+                i++;
+            }
+        }
+
+        if (overflow) {
+            // 保持窗口与解码端(将收到原始包)一致
+            appendToWindow(src, srcOff + i, srcLen - i);
+            return -1;
+        }
+
+        out = flushLiterals(src, srcOff + literalStart, srcLen - literalStart, dst, out, end);
+        return out < 0 ? -1 : out - dstOff;
+    }
+
+    @Override
+    public int decode(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLimit) {
+        int in = srcOff;
+        int end = srcOff + srcLen;
+        int out = dstOff;
+        int outEnd = dstOff + dstLimit;
+
+        while (in < end) {
+            int token = src[in++] & 0xFF;
+            if ((token & 0x80) == 0) {
+                int length = token + 1;
+                if (in + length > end || out + length > outEnd) {
+                    return -1;
+                }
+                System.arraycopy(src, in, dst, out, length);
+                appendToWindow(src, in, length);
+                in += length;
+                out += length;
+            } else {
+                if (in >= end) {
+                    return -1;
+                }
+                int length = ((token >> 3) & 0x0F) + MIN_MATCH;
+                int distance = (((token & 0x07) << 8) | (src[in++] & 0xFF)) + 1;
+                if (out + length > outEnd) {
+                    return -1;
+                }
+                // 逐字节复制，允许与正在写入的内容重叠
+                for (int k = 0; k < length; k++) {
+                    byte b = mWindow[(mPosition - distance) & WINDOW_MASK];
+                    mWindow[mPosition & WINDOW_MASK] = b;
+                    mPosition++;
+                    dst[out++] = b;
+                }
+            }
+        }
+        return out - dstOff;
+    }
+
+    @Override
+    public void observe(byte[] raw, int off, int len) {
+        appendToWindow(raw, off, len);
+    }
+
+    @Override
+    public void reset() {
+        mPosition = 0;
+        Arrays.fill(mWindow, (byte) 0);
+        Arrays.fill(mHashHead, 0);
+    }
+
+    private int flushLiterals(byte[] src, int off, int len, byte[] dst, int out, int end) {
+        while (len > 0) {
+            int run = Math.min(len, MAX_LITERALS);
+            if (out + 1 + run > end) {
+                return -1;
+            }
+            dst[out++] = (byte) (run - 1);
+            System.arraycopy(src, off, dst, out, run);
+            out += run;
+            off += run;
+            len -= run;
+        }
+        return out;
+    }
+
+    /**
+     * 读取绝对位置上的字节，位置已写入窗口时从窗口读，否则从当前输入读
+     */
+    private byte byteAt(byte[] src, int srcOff, int base, int position) {
+        if (position - mPosition < 0) {
+            return mWindow[position & WINDOW_MASK];
+        }
+        return src[srcOff + position - base];
+    }
+
+    private void appendToWindow(byte[] data, int off, int len) {
+        for (int k = 0; k < len; k++) {
+            mWindow[mPosition & WINDOW_MASK] = data[off + k];
+            mPosition++;
+        }
+    }
+
+    private static int hash(byte b0, byte b1, byte b2) {
+        int value = ((b0 & 0xFF) << 16) | ((b1 & 0xFF) << 8) | (b2 & 0xFF);
+        return (value * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+}
@@ -0,0 +1,39 @@
+package com.aylmerchen.ble;
+
+/**
+ * 数据包编解码器，由 {@link PayloadCodecStage} 在发送和接收时调用。
+ * 编解码器可以有状态(例如压缩窗口、上一个采样值)，但状态只能由原始数据的历史决定，
+ * 这样即使某个包因为编码后放不下而以原始数据发送，两端的状态依然一致。
+ * 所有方法都在调用方提供的缓冲区上操作，实现中不应分配内存
+ * @author AylmerChen
+ * @date 2018/4/17
+ */
+public interface PayloadCodec {
+
+    /**
+     * 编码标识，写在每个包的首字节，用于接收端选择解码器，0 保留给未编码的包
+     */
+    int getId();
+
+    /**
+     * 编码。无论成功与否，编码器都要把 src 计入自己的历史状态
+     * @return 编码后的长度，输出超过 dstLimit 或数据无法编码时返回 -1
+     */
+    int encode(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLimit);
+
+    /**
+     * 解码，并把解码结果计入历史状态
+     * @return 解码后的长度，数据损坏或输出超过 dstLimit 时返回 -1
+     */
+    int decode(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLimit);
+
+    /**
+     * 解码端收到对端未编码发送的原始包，计入历史状态以保持与编码端一致
+     */
+    void observe(byte[] raw, int off, int len);
+
+    /**
+     * 清空历史状态，连接断开重连时两端都需要重置
+     */
+    void reset();
+}
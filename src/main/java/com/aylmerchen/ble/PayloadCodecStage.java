@@ -0,0 +1,235 @@
+package com.aylmerchen.ble;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * 发送与接收之间的编解码环节。
+ * 每个包的首字节低 7 位标明本包使用的编码(0 表示未编码)，发送端按流选择编码器，编码后放不下时自动退回原始数据，
+ * 接收端根据首字节选择对应的解码器，所以两端只需注册相同的编解码器即可协商。
+ * 首字节最高位表示发送端已重置编码状态，接收端需要先重置解码器再处理本包，用于切换编码器或丢弃过大的包后重新同步。
+ * 编解码使用预先分配的缓冲区，只有最终交给系统或外部的数组需要分配
+ * @author AylmerChen
+ * @date 2018/4/17
+ */
+public final class PayloadCodecStage {
+
+    /**
+     * 未编码包的标识
+     */
+    public static final int ID_RAW = 0;
+
+    private static final int ID_MASK = 0x7F;
+    private static final int FLAG_RESET = 0x80;
+
+    /**
+     * 单个包解码后的最大长度
+     */
+    private static final int MAX_DECODED_SIZE = 255;
+
+    /**
+     * 按标识索引的解码器，未注册的位置为 null
+     */
+    private final PayloadCodec[] mDecoders = new PayloadCodec[ID_MASK + 1];
+    private PayloadCodec mEncoder;
+
+    /**
+     * 编码状态已重置，下一个发出的包需要通知对端
+     */
+    private boolean mPendingReset;
+
+    private final byte[] mEncodeBuffer = new byte[BtLeGattService.SEND_PACKAGE_MAX_SIZE];
+    private final byte[] mDecodeBuffer = new byte[MAX_DECODED_SIZE];
+
+    /**
+     * 发送方向：原始字节数、实际发出的字节数、退回原始数据的包数
+     */
+    private long mEncodeRawBytes;
+    private long mEncodeWireBytes;
+    private long mEncodeFallbackCount;
+
+    /**
+     * 接收方向：收到的字节数、解码后的字节数、解码失败的包数
+     */
+    private long mDecodeWireBytes;
+    private long mDecodeRawBytes;
+    private long mDecodeErrorCount;
+
+    /**
+     * @param encoder 发送方向使用的编码器，为 null 时所有包都以原始数据发送
+     * @param decoders 接收方向可识别的解码器，需要与发送方向使用不同的实例
+     */
+    public PayloadCodecStage(@Nullable PayloadCodec encoder, @NonNull PayloadCodec... decoders) {
+        for (PayloadCodec decoder : decoders) {
+            checkId(decoder);
+            mDecoders[decoder.getId()] = decoder;
+        }
+        checkEncoder(encoder);
+        mEncoder = encoder;
+    }
+
+    /**
+     * 切换发送方向的编码器，新编码器从空状态开始，下一个包会通知对端同时重置
+     */
+    public synchronized void setEncoder(@Nullable PayloadCodec encoder) {
+        checkEncoder(encoder);
+        if (encoder != null) {
+            encoder.reset();
+        }
+        mEncoder = encoder;
+        mPendingReset = true;
+    }
+
+    /**
+     * 编码器的标识写在首字节的低 7 位，且不能与解码器共用实例，否则两个方向的历史状态会互相干扰
+     */
+    private void checkEncoder(PayloadCodec encoder) {
+        if (encoder == null) {
+            return;
+        }
+        checkId(encoder);
+        for (PayloadCodec decoder : mDecoders) {
+            if (decoder == encoder) {
+                throw new IllegalArgumentException("Encoder and decoder must be different instances");
+            }
+        }
+    }
+
+    private static void checkId(PayloadCodec codec) {
+        if (codec.getId() <= ID_RAW || codec.getId() > ID_MASK) {
+            throw new IllegalArgumentException("Codec id must be in 1..127");
+        }
+    }
+
+    /**
+     * 编码一个待发送的包
+     * @return 加上首字节后的完整数据包，原始数据和编码结果都放不下一个包时返回 null
+     */
+    synchronized byte[] encode(byte[] data) {
+        int length = -1;
+        if (mEncoder != null) {
+            length = mEncoder.encode(data, 0, data.length, mEncodeBuffer, 1, mEncodeBuffer.length - 1);
+        }
+
+        byte[] packet;
+        if (length >= 0 && length < data.length) {
+            mEncodeBuffer[0] = (byte) mEncoder.getId();
+            packet = Arrays.copyOf(mEncodeBuffer, length + 1);
+        } else if (data.length < mEncodeBuffer.length) {
+            mEncodeFallbackCount++;
+            packet = new byte[data.length + 1];
+            packet[0] = ID_RAW;
+            System.arraycopy(data, 0, packet, 1, data.length);
+        } else {
+            // 编码器已经记下了这个包，而对端不会收到，只能重置后在下一个包重新同步
+            if (mEncoder != null) {
+                mEncoder.reset();
+                mPendingReset = true;
+            }
+            return null;
+        }
+
+        if (mPendingReset) {
+            packet[0] |= FLAG_RESET;
+            mPendingReset = false;
+        }
+        mEncodeRawBytes += data.length;
+        mEncodeWireBytes += packet.length;
+        return packet;
+    }
+
+    /**
+     * 解码一个收到的包
+     * @return 解码后的数据，首字节无法识别或数据损坏时返回 null
+     */
+    synchronized byte[] decode(byte[] packet) {
+        if (packet == null || packet.length == 0) {
+            return null;
+        }
+        mDecodeWireBytes += packet.length;
+
+        int id = packet[0] & ID_MASK;
+        if ((packet[0] & FLAG_RESET) != 0) {
+            resetDecoders();
+        }
+
+        if (id == ID_RAW) {
+            // 对端未编码发送，所有解码器都要同步历史
+            for (PayloadCodec decoder : mDecoders) {
+                if (decoder != null) {
+                    decoder.observe(packet, 1, packet.length - 1);
+                }
+            }
+            mDecodeRawBytes += packet.length - 1;
+            return Arrays.copyOfRange(packet, 1, packet.length);
+        }
+
+        PayloadCodec decoder = mDecoders[id];
+        int length = decoder == null ? -1 : decoder.decode(packet, 1, packet.length - 1, mDecodeBuffer, 0, mDecodeBuffer.length);
+        if (length < 0) {
+            mDecodeErrorCount++;
+            return null;
+        }
+        mDecodeRawBytes += length;
+        return Arrays.copyOf(mDecodeBuffer, length);
+    }
+
+    /**
+     * 编码后的包未能发出(例如系统拒绝了写请求)，重置编码状态并在下一个包通知对端
+     */
+    synchronized void discardLastEncoded() {
+        if (mEncoder != null) {
+            mEncoder.reset();
+        }
+        mPendingReset = true;
+    }
+
+    /**
+     * 清空所有编解码器的历史状态，连接断开时调用
+     */
+    synchronized void reset() {
+        if (mEncoder != null) {
+            mEncoder.reset();
+        }
+        mPendingReset = true;
+        resetDecoders();
+    }
+
+    private void resetDecoders() {
+        for (PayloadCodec decoder : mDecoders) {
+            if (decoder != null) {
+                decoder.reset();
+            }
+        }
+    }
+
+    /**
+     * 发送方向的压缩比，即实际发出字节数 / 原始字节数，没有数据时返回 1
+     */
+    public synchronized double getEncodeRatio() {
+        return mEncodeRawBytes == 0 ? 1.0 : (double) mEncodeWireBytes / mEncodeRawBytes;
+    }
+
+    /**
+     * 接收方向的压缩比，即收到字节数 / 解码后字节数，没有数据时返回 1
+     */
+    public synchronized double getDecodeRatio() {
+        return mDecodeRawBytes == 0 ? 1.0 : (double) mDecodeWireBytes / mDecodeRawBytes;
+    }
+
+    /**
+     * 因编码无收益或放不下而以原始数据发送的包数
+     */
+    public synchronized long getEncodeFallbackCount() {
+        return mEncodeFallbackCount;
+    }
+
+    /**
+     * 无法解码而被丢弃的包数
+     */
+    public synchronized long getDecodeErrorCount() {
+        return mDecodeErrorCount;
+    }
+}
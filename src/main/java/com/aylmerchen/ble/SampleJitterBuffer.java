@@ -0,0 +1,143 @@
+package com.aylmerchen.ble;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 抖动缓冲：蓝牙通知通常在每个连接间隔内成批到达，缓冲一定数量的样本后按固定周期逐个重新发出，
+ * 样本自身的时间戳不变，只平滑投递节奏
+ * @author AylmerChen
+ * @date 2018/4/17
+ */
+public final class SampleJitterBuffer {
+
+    private final long mPeriodNanos;
+    private final int mTargetDepth;
+    private final int mMaxDepth;
+
+    private final ArrayDeque<BleSample> mQueue;
+
+    private Handler mOutput;
+    private Handler mTimer;
+
+    /**
+     * 是否正在预填充，启动时或缓冲被取空后需要重新积累到目标深度才开始输出
+     */
+    private boolean mPrefilling = true;
+    private long mStartUptime;
+    private long mTicks;
+
+    private long mUnderrunCount;
+    private long mDropCount;
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            onTick();
+        }
+    };
+
+    /**
+     * @param period 输出周期，通常为设备的采样周期
+     * @param unit period 的单位
+     * @param targetDepth 开始输出前需要积累的样本数
+     * @param maxDepth 缓冲上限，超出时丢弃最旧的样本
+     */
+    public SampleJitterBuffer(long period, @NonNull TimeUnit unit, int targetDepth, int maxDepth) {
+        if (period <= 0 || targetDepth < 1 || maxDepth < targetDepth) {
+            throw new IllegalArgumentException("Invalid jitter buffer config");
+        }
+        mPeriodNanos = unit.toNanos(period);
+        mTargetDepth = targetDepth;
+        mMaxDepth = maxDepth;
+        mQueue = new ArrayDeque<>(maxDepth);
+    }
+
+    /**
+     * 开始向 output 输出 BtLeGattService#MSG_DATA_SAMPLE_AVAILABLE 消息，定时也运行在 output 所在的线程上
+     */
+    synchronized void start(@NonNull Handler output) {
+        stop();
+        mOutput = output;
+        mTimer = new Handler(output.getLooper());
+        mPrefilling = true;
+    }
+
+    synchronized void stop() {
+        if (mTimer != null) {
+            mTimer.removeCallbacks(mTick);
+        }
+        mTimer = null;
+        mOutput = null;
+        mQueue.clear();
+    }
+
+    /**
+     * 丢弃缓冲中的样本并重新预填充，例如连接断开时
+     */
+    synchronized void flush() {
+        if (mTimer != null) {
+            mTimer.removeCallbacks(mTick);
+        }
+        mQueue.clear();
+        mPrefilling = true;
+    }
+
+    /**
+     * 蓝牙回调线程放入新样本
+     */
+    synchronized void offer(BleSample sample) {
+        if (mTimer == null) {
+            return;
+        }
+        if (mQueue.size() >= mMaxDepth) {
+            mQueue.pollFirst();
+            mDropCount++;
+        }
+        mQueue.addLast(sample);
+
+        if (mPrefilling && mQueue.size() >= mTargetDepth) {
+            mPrefilling = false;
+            mStartUptime = SystemClock.uptimeMillis();
+            mTicks = 0;
+            mTimer.post(mTick);
+        }
+    }
+
+    private synchronized void onTick() {
+        if (mTimer == null || mPrefilling) {
+            return;
+        }
+
+        BleSample sample = mQueue.pollFirst();
+        if (sample == null) {
+            // 缓冲被取空，重新预填充
+            mUnderrunCount++;
+            mPrefilling = true;
+            return;
+        }
+        mOutput.obtainMessage(BtLeGattService.MSG_DATA_SAMPLE_AVAILABLE, sample).sendToTarget();
+
+        // 按起始时间累加周期来定时，避免误差累积
+        mTicks++;
+        mTimer.postAtTime(mTick, mStartUptime + mTicks * mPeriodNanos / 1000000L);
+    }
+
+    /**
+     * 缓冲被取空的次数
+     */
+    public synchronized long getUnderrunCount() {
+        return mUnderrunCount;
+    }
+
+    /**
+     * 因缓冲溢出而丢弃的样本数
+     */
+    public synchronized long getDropCount() {
+        return mDropCount;
+    }
+}
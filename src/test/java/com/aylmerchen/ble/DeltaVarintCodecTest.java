@@ -0,0 +1,102 @@
+package com.aylmerchen.ble;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author AylmerChen
+ * @date 2018/4/17
+ */
+public class DeltaVarintCodecTest {
+
+    private final byte[] mWire = new byte[BtLeGattService.SEND_PACKAGE_MAX_SIZE - 1];
+    private final byte[] mOut = new byte[255];
+
+    @Test
+    public void roundTripAcrossPackets() {
+        for (int sampleBytes : new int[]{1, 2, 4}) {
+            roundTrip(new DeltaVarintCodec(sampleBytes, true), new DeltaVarintCodec(sampleBytes, true), sampleBytes);
+            roundTrip(new DeltaVarintCodec(sampleBytes, false), new DeltaVarintCodec(sampleBytes, false), sampleBytes);
+        }
+    }
+
+    private void roundTrip(DeltaVarintCodec encoder, DeltaVarintCodec decoder, int sampleBytes) {
+        Random random = new Random(sampleBytes);
+        int value = 0;
+        for (int n = 0; n < 500; n++) {
+            byte[] packet = new byte[sampleBytes * (1 + random.nextInt(mWire.length / sampleBytes))];
+            for (int i = 0; i < packet.length; i += sampleBytes) {
+                // 大多数采样缓慢变化，偶尔跳变(包括回绕)
+                value += random.nextInt(10) == 0 ? random.nextInt() : random.nextInt(7) - 3;
+                for (int k = 0; k < sampleBytes; k++) {
+                    packet[i + k] = (byte) (value >> (8 * k));
+                }
+            }
+            transfer(encoder, decoder, packet);
+        }
+    }
+
+    @Test
+    public void rawFallbackStaysInSyncThroughObserve() {
+        DeltaVarintCodec encoder = new DeltaVarintCodec(2, true);
+        DeltaVarintCodec decoder = new DeltaVarintCodec(2, true);
+
+        // 采样在两个包之间大幅跳变，编码放不下，按原始数据发送
+        byte[] jumps = new byte[mWire.length];
+        for (int i = 0; i < jumps.length; i += 2) {
+            jumps[i + 1] = (byte) (i % 4 == 0 ? 0x7F : 0x80);
+        }
+        assertEquals(-1, encoder.encode(jumps, 0, jumps.length, mWire, 0, mWire.length));
+        decoder.observe(jumps, 0, jumps.length);
+
+        // 长度不是采样宽度的整数倍，同样退回原始数据
+        byte[] odd = {0x10, (byte) 0x80, 0x11};
+        assertEquals(-1, encoder.encode(odd, 0, odd.length, mWire, 0, mWire.length));
+        decoder.observe(odd, 0, odd.length);
+
+        byte[] next = {0x12, (byte) 0x80, 0x13, (byte) 0x80};
+        int length = transfer(encoder, decoder, next);
+        assertEquals(2, length);
+    }
+
+    @Test
+    public void resetRestartsFromZero() {
+        DeltaVarintCodec encoder = new DeltaVarintCodec(1, true);
+        DeltaVarintCodec decoder = new DeltaVarintCodec(1, true);
+        transfer(encoder, decoder, new byte[]{100, 101, 102});
+
+        encoder.reset();
+        decoder.reset();
+        transfer(encoder, decoder, new byte[]{3, 2, 1});
+    }
+
+    @Test
+    public void corruptInputFails() {
+        DeltaVarintCodec decoder = new DeltaVarintCodec(2, true);
+        // varint 未结束
+        assertEquals(-1, decoder.decode(new byte[]{(byte) 0x81}, 0, 1, mOut, 0, mOut.length));
+        // varint 超过 5 字节
+        byte[] tooLong = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01};
+        assertEquals(-1, decoder.decode(tooLong, 0, tooLong.length, mOut, 0, mOut.length));
+        // 输出超出上限
+        assertEquals(-1, decoder.decode(new byte[]{1, 1}, 0, 2, mOut, 0, 3));
+    }
+
+    private int transfer(DeltaVarintCodec encoder, DeltaVarintCodec decoder, byte[] packet) {
+        int length = encoder.encode(packet, 0, packet.length, mWire, 0, mWire.length);
+        if (length < 0) {
+            decoder.observe(packet, 0, packet.length);
+            return length;
+        }
+        int decoded = decoder.decode(mWire, 0, length, mOut, 0, mOut.length);
+        assertTrue(decoded >= 0);
+        assertArrayEquals(packet, Arrays.copyOf(mOut, decoded));
+        return length;
+    }
+}
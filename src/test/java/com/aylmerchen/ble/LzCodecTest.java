@@ -0,0 +1,106 @@
+package com.aylmerchen.ble;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author AylmerChen
+ * @date 2018/4/17
+ */
+public class LzCodecTest {
+
+    private static final int PACKET_LIMIT = BtLeGattService.SEND_PACKAGE_MAX_SIZE - 1;
+
+    private final LzCodec mEncoder = new LzCodec();
+    private final LzCodec mDecoder = new LzCodec();
+    private final byte[] mWire = new byte[PACKET_LIMIT];
+    private final byte[] mOut = new byte[255];
+
+    @Test
+    public void roundTripAcrossPackets() {
+        byte[] log = "temp=25.1;hum=40;temp=25.2;hum=41;temp=25.1;hum=40;temp=25.3;hum=41;"
+                .getBytes(Charset.forName("US-ASCII"));
+
+        boolean compressed = false;
+        for (int off = 0; off < log.length; off += 12) {
+            byte[] packet = Arrays.copyOfRange(log, off, Math.min(off + 12, log.length));
+            int length = mEncoder.encode(packet, 0, packet.length, mWire, 0, mWire.length);
+            if (length < 0) {
+                mDecoder.observe(packet, 0, packet.length);
+                continue;
+            }
+            compressed |= length < packet.length;
+            assertArrayEquals(packet, decode(length));
+        }
+        // 后面的包引用了前面包中的内容
+        assertTrue(compressed);
+    }
+
+    @Test
+    public void roundTripRandomPackets() {
+        Random random = new Random(42);
+        byte[] alphabet = {'a', 'b', 'c', 'd'};
+        for (int n = 0; n < 2000; n++) {
+            byte[] packet = new byte[1 + random.nextInt(PACKET_LIMIT)];
+            for (int i = 0; i < packet.length; i++) {
+                packet[i] = alphabet[random.nextInt(alphabet.length)];
+            }
+            int length = mEncoder.encode(packet, 0, packet.length, mWire, 0, mWire.length);
+            if (length < 0) {
+                mDecoder.observe(packet, 0, packet.length);
+            } else {
+                assertArrayEquals(packet, decode(length));
+            }
+        }
+    }
+
+    @Test
+    public void rejectedPacketStaysInSyncThroughObserve() {
+        Random random = new Random(7);
+        byte[] noise = new byte[PACKET_LIMIT];
+        random.nextBytes(noise);
+        // 随机数据放不下，按原始数据发送，解码端只同步历史
+        assertEquals(-1, mEncoder.encode(noise, 0, noise.length, mWire, 0, mWire.length));
+        mDecoder.observe(noise, 0, noise.length);
+
+        // 下一个包引用被拒绝的那个包
+        byte[] repeat = Arrays.copyOfRange(noise, 2, 16);
+        int length = mEncoder.encode(repeat, 0, repeat.length, mWire, 0, mWire.length);
+        assertTrue(length >= 0 && length < repeat.length);
+        assertArrayEquals(repeat, decode(length));
+    }
+
+    @Test
+    public void resetRestartsHistory() {
+        byte[] packet = "abcabcabcabc".getBytes(Charset.forName("US-ASCII"));
+        decode(mEncoder.encode(packet, 0, packet.length, mWire, 0, mWire.length));
+
+        mEncoder.reset();
+        mDecoder.reset();
+        int length = mEncoder.encode(packet, 0, packet.length, mWire, 0, mWire.length);
+        assertArrayEquals(packet, decode(length));
+    }
+
+    @Test
+    public void corruptInputFails() {
+        // 字面长度超出输入
+        assertEquals(-1, mDecoder.decode(new byte[]{5, 'a', 'b'}, 0, 3, mOut, 0, mOut.length));
+        // 复制标记缺少距离字节
+        assertEquals(-1, mDecoder.decode(new byte[]{(byte) 0x80}, 0, 1, mOut, 0, mOut.length));
+        // 输出超出上限
+        assertEquals(-1, mDecoder.decode(new byte[]{2, 'a', 'b', 'c'}, 0, 4, mOut, 0, 2));
+    }
+
+    private byte[] decode(int length) {
+        int decoded = mDecoder.decode(mWire, 0, length, mOut, 0, mOut.length);
+        assertTrue(decoded >= 0);
+        return Arrays.copyOf(mOut, decoded);
+    }
+}
@@ -0,0 +1,181 @@
+package com.aylmerchen.ble;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author AylmerChen
+ * @date 2018/4/17
+ */
+public class PayloadCodecStageTest {
+
+    private static final int FLAG_RESET = 0x80;
+    private static final int MAX_RAW = BtLeGattService.SEND_PACKAGE_MAX_SIZE - 1;
+
+    private final PayloadCodecStage mSender = new PayloadCodecStage(new LzCodec(), new LzCodec());
+    private final PayloadCodecStage mReceiver = new PayloadCodecStage(new LzCodec(), new LzCodec());
+
+    @Test
+    public void roundTripAcrossPackets() {
+        byte[] line = "GET /status HTTP/1.1;".getBytes(Charset.forName("US-ASCII"));
+        boolean compressed = false;
+        for (int n = 0; n < 20; n++) {
+            byte[] data = slice(line, n * 7 % line.length, 15);
+            byte[] packet = mSender.encode(data);
+            compressed |= (packet[0] & 0x7F) == LzCodec.ID;
+            assertArrayEquals(data, mReceiver.decode(packet));
+        }
+        assertTrue(compressed);
+        assertTrue(mSender.getEncodeRatio() < 1.0);
+    }
+
+    @Test
+    public void rawFallbackKeepsDecoderInSync() {
+        Random random = new Random(3);
+        for (int n = 0; n < 1000; n++) {
+            byte[] data = new byte[1 + random.nextInt(MAX_RAW)];
+            // 混合随机包与重复包，两种首字节交替出现
+            if (n % 3 == 0) {
+                random.nextBytes(data);
+            } else {
+                for (int i = 0; i < data.length; i++) {
+                    data[i] = (byte) ('0' + random.nextInt(3));
+                }
+            }
+            assertArrayEquals(data, mReceiver.decode(mSender.encode(data)));
+        }
+        assertTrue(mSender.getEncodeFallbackCount() > 0);
+        assertEquals(0, mReceiver.getDecodeErrorCount());
+    }
+
+    @Test
+    public void resetMarksOnlyNextPacket() {
+        mSender.encode(new byte[]{1, 2, 3});
+        mSender.reset();
+        byte[] first = mSender.encode(new byte[]{1, 2, 3});
+        byte[] second = mSender.encode(new byte[]{1, 2, 3});
+        assertTrue((first[0] & FLAG_RESET) != 0);
+        assertEquals(0, second[0] & FLAG_RESET);
+    }
+
+    @Test
+    public void discardedPacketResyncsThroughResetFlag() {
+        byte[] data = "abcdefghabcdefgh".getBytes(Charset.forName("US-ASCII"));
+        assertArrayEquals(data, mReceiver.decode(mSender.encode(data)));
+
+        // 系统拒绝了写请求，对端没有收到这个包
+        mSender.encode("ijklmnop".getBytes(Charset.forName("US-ASCII")));
+        mSender.discardLastEncoded();
+
+        byte[] packet = mSender.encode(data);
+        assertTrue((packet[0] & FLAG_RESET) != 0);
+        assertArrayEquals(data, mReceiver.decode(packet));
+    }
+
+    @Test
+    public void oversizedPacketIsRejectedAndResyncs() {
+        byte[] data = "abcdefghabcdefgh".getBytes(Charset.forName("US-ASCII"));
+        assertArrayEquals(data, mReceiver.decode(mSender.encode(data)));
+
+        byte[] oversized = new byte[MAX_RAW + 1];
+        new Random(5).nextBytes(oversized);
+        assertNull(mSender.encode(oversized));
+
+        byte[] packet = mSender.encode(data);
+        assertTrue((packet[0] & FLAG_RESET) != 0);
+        assertArrayEquals(data, mReceiver.decode(packet));
+    }
+
+    @Test
+    public void switchingEncoderResetsBothSides() {
+        PayloadCodecStage receiver = new PayloadCodecStage(null, new LzCodec(), new DeltaVarintCodec(2, true));
+        byte[] data = {10, 0, 11, 0, 12, 0, 13, 0};
+        assertArrayEquals(data, receiver.decode(mSender.encode(data)));
+
+        mSender.setEncoder(new DeltaVarintCodec(2, true));
+        byte[] packet = mSender.encode(data);
+        assertNotNull(packet);
+        assertEquals(FLAG_RESET | DeltaVarintCodec.ID, packet[0] & 0xFF);
+        assertArrayEquals(data, receiver.decode(packet));
+    }
+
+    @Test
+    public void corruptPacketIsDropped() {
+        // 未注册的编码
+        assertNull(mReceiver.decode(new byte[]{DeltaVarintCodec.ID, 0}));
+        // 字面长度超出包长
+        assertNull(mReceiver.decode(new byte[]{LzCodec.ID, 5, 'a'}));
+        assertNull(mReceiver.decode(new byte[0]));
+        assertEquals(2, mReceiver.getDecodeErrorCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSharedEncoderAndDecoder() {
+        LzCodec codec = new LzCodec();
+        new PayloadCodecStage(codec, codec);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSharedInstanceOnSetEncoder() {
+        LzCodec codec = new LzCodec();
+        new PayloadCodecStage(null, codec).setEncoder(codec);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRawId() {
+        new PayloadCodecStage(new FixedIdCodec(PayloadCodecStage.ID_RAW));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsIdOutsideHeader() {
+        new PayloadCodecStage(null, new FixedIdCodec(0x80));
+    }
+
+    private static byte[] slice(byte[] source, int from, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = source[(from + i) % source.length];
+        }
+        return data;
+    }
+
+    private static final class FixedIdCodec implements PayloadCodec {
+
+        private final int mId;
+
+        FixedIdCodec(int id) {
+            mId = id;
+        }
+
+        @Override
+        public int getId() {
+            return mId;
+        }
+
+        @Override
+        public int encode(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLimit) {
+            return -1;
+        }
+
+        @Override
+        public int decode(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLimit) {
+            return -1;
+        }
+
+        @Override
+        public void observe(byte[] raw, int off, int len) {
+        }
+
+        @Override
+        public void reset() {
+        }
+    }
+}